@@ -0,0 +1,49 @@
+package com.github.vincentrussell.tomcat.session;
+
+import org.apache.catalina.Manager;
+import org.apache.catalina.session.StandardSession;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link StandardSession} created by the {@link MongoSessionManager}.  It counts the
+ * requests currently using it, so that the manager does not swap it out from under
+ * them.  {@link StandardSession} only counts them when ACTIVITY_CHECK is on, and
+ * that count isn't visible outside of its package.
+ *
+ * @author Vincent Russell
+ */
+public class MongoSession extends StandardSession {
+
+    private transient AtomicInteger requestsInFlight = new AtomicInteger();
+
+    public MongoSession(Manager manager) {
+        super(manager);
+    }
+
+    @Override
+    public void access() {
+        requestsInFlight.incrementAndGet();
+        super.access();
+    }
+
+    @Override
+    public void endAccess() {
+        super.endAccess();
+        requestsInFlight.decrementAndGet();
+    }
+
+    private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+        stream.defaultReadObject();
+        requestsInFlight = new AtomicInteger();
+    }
+
+    /**
+     * @return whether a request is currently using this session
+     */
+    public boolean isAccessInProgress() {
+        return requestsInFlight.get() > 0;
+    }
+}
@@ -1,21 +1,65 @@
 package com.github.vincentrussell.tomcat.session;
 
+import org.apache.catalina.Container;
 import org.apache.catalina.Context;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
 import org.apache.catalina.SessionIdGenerator;
 import org.apache.catalina.session.PersistentManagerBase;
+import org.apache.catalina.session.StandardSession;
 import org.apache.catalina.util.StandardSessionIdGenerator;
 import org.apache.tomcat.util.ExceptionUtils;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Extension of {@link PersistentManagerBase} meant to be used with the
- * {@link MongoSessionStore}.  The only thing that this class really does
- * is that it loads the sessions from the database on startup.
+ * {@link MongoSessionStore}.  It loads the sessions from the database on startup,
+ * can keep the active sessions under a byte budget by swapping them out to the store
+ * and, when a background processor is running, spreads the idle session backups
+ * over the backup interval with a {@link SessionBackupScheduler}.
  *
  * @author Vincent Russell
  */
 public class MongoSessionManager extends PersistentManagerBase {
 
+    /**
+     * Key of the note of a session in which the lastAccessedTime at the last backup is stored.
+     */
+    private static final String PERSISTED_LAST_ACCESSED_TIME =
+            MongoSessionManager.class.getName() + ".persistedLastAccessedTime";
+
+    /**
+     * Key of the note of a session in which the time of the last backup is stored.
+     */
+    private static final String LAST_BACKUP_TIME =
+            MongoSessionManager.class.getName() + ".lastBackupTime";
+
+    /**
+     * Key of the note of a session that has been counted as swapped in.
+     */
+    private static final String SWAP_IN_COUNTED =
+            MongoSessionManager.class.getName() + ".swapInCounted";
+
+    private int maxBackupWritesPerSecond = -1;
+    private int maxBackupBytesPerSecond = -1;
+    private int backupJitterPercent = 25;
+    private SessionBackupScheduler backupScheduler;
+    private long maxActiveSessionBytes = -1;
+    private boolean swapLargestSessionsFirst = false;
+    private final AtomicLong swapInCount = new AtomicLong();
+    private final AtomicLong swapOutCount = new AtomicLong();
+    private long swapInCountAtLastCheck;
+    private long lastCheckTime = System.currentTimeMillis();
+    private volatile double swapInsPerSecond;
+
     public MongoSessionManager() {
         maxIdleSwap = 0;
         maxIdleBackup = 5;
@@ -33,6 +77,405 @@ public class MongoSessionManager extends PersistentManagerBase {
             ExceptionUtils.handleThrowable(t);
             getContext().getLogger().error(sm.getString("standardManager.managerLoad"), t);
         }
+        // the sessions loaded on startup are not counted as swap ins
+        swapInCount.set(0);
+        swapInCountAtLastCheck = 0;
+        lastCheckTime = System.currentTimeMillis();
+        if (getBackupIntervalMillis() > 0) {
+            backupScheduler = new SessionBackupScheduler(this, maxBackupWritesPerSecond,
+                    maxBackupBytesPerSecond, backupJitterPercent);
+            backupScheduler.start();
+            if (maxIdleSwap >= 0 && maxIdleSwap <= maxIdleBackup) {
+                getContext().getLogger().warn("maxIdleSwap " + maxIdleSwap + " swaps out idle sessions"
+                        + " before they are due for a backup, so backups won't be spread or rate limited;"
+                        + " set maxIdleSwap to -1 or above maxIdleBackup " + maxIdleBackup);
+            }
+        }
+    }
+
+    @Override
+    protected synchronized void stopInternal() throws LifecycleException {
+        if (backupScheduler != null) {
+            backupScheduler.stop();
+            backupScheduler = null;
+        }
+        super.stopInternal();
+    }
+
+    @Override
+    protected StandardSession getNewSession() {
+        return new MongoSession(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A thread that waited for another one to load the same session gets the
+     * already loaded session back, so each loaded session is counted only once.
+     */
+    @Override
+    protected Session swapIn(String id) throws IOException {
+        Session session = super.swapIn(id);
+        if (session != null) {
+            synchronized (session) {
+                if (session.getNote(SWAP_IN_COUNTED) == null) {
+                    session.setNote(SWAP_IN_COUNTED, Boolean.TRUE);
+                    swapInCount.incrementAndGet();
+                }
+            }
+        }
+        return session;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The sessions written out by {@link #unload()} while stopping are not counted.
+     */
+    @Override
+    protected void swapOut(Session session) throws IOException {
+        boolean counted = session.isValid() && getState().isAvailable();
+        super.swapOut(session);
+        if (counted) {
+            swapOutCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Swap out sessions to keep the count below maxActiveSessions and then to keep the
+     * resident bytes below maxActiveSessionBytes.
+     */
+    @Override
+    protected void processMaxActiveSwaps() {
+        super.processMaxActiveSwaps();
+        processMaxActiveBytesSwaps();
+        updateSwapInRate();
+    }
+
+    /**
+     * Swap idle sessions out to the store while the estimated size of the active sessions
+     * is over maxActiveSessionBytes.  Like the count based swaps nothing is swapped out when
+     * minIdleSwap is {@code -1}.  Sessions must have been idle for at least minIdleSwap seconds,
+     * must not have a request in flight and are swapped out least recently used first, or largest first when
+     * swapLargestSessionsFirst is set.  Sessions whose size is not known yet are left alone
+     * since swapping them out would not bring the estimate down.
+     */
+    protected void processMaxActiveBytesSwaps() {
+        if (!getState().isAvailable() || minIdleSwap < 0 || maxActiveSessionBytes < 0) {
+            return;
+        }
+
+        long residentBytes = 0;
+        final Map<Session, Long> candidates = new HashMap<>();
+        for (Session session : findSessions()) {
+            int size = getSessionSize(session);
+            residentBytes += size;
+            synchronized (session) {
+                if (size > 0 && session.isValid() && !isAccessInProgress(session)
+                        && ((StandardSession) session).getIdleTimeInternal() / 1000L >= minIdleSwap) {
+                    candidates.put(session, swapLargestSessionsFirst ? -size
+                            : session.getLastAccessedTimeInternal());
+                }
+            }
+        }
+
+        if (residentBytes <= maxActiveSessionBytes) {
+            return;
+        }
+
+        List<Session> swapOrder = new ArrayList<>(candidates.keySet());
+        Collections.sort(swapOrder, new Comparator<Session>() {
+            @Override
+            public int compare(Session session1, Session session2) {
+                return candidates.get(session1).compareTo(candidates.get(session2));
+            }
+        });
+
+        for (Session session : swapOrder) {
+            if (residentBytes <= maxActiveSessionBytes) {
+                break;
+            }
+            synchronized (session) {
+                if (!session.isValid() || isAccessInProgress(session)) {
+                    continue;
+                }
+                int size = getSessionSize(session);
+                try {
+                    swapOut(session);
+                } catch (IOException e) {
+                    // This is logged in writeSession()
+                    continue;
+                }
+                residentBytes -= size;
+            }
+        }
+    }
+
+    private static boolean isAccessInProgress(Session session) {
+        return session instanceof MongoSession && ((MongoSession) session).isAccessInProgress();
+    }
+
+    private synchronized void updateSwapInRate() {
+        long now = System.currentTimeMillis();
+        if (now <= lastCheckTime) {
+            return;
+        }
+        long count = swapInCount.get();
+        swapInsPerSecond = (count - swapInCountAtLastCheck) * 1000.0 / (now - lastCheckTime);
+        swapInCountAtLastCheck = count;
+        lastCheckTime = now;
+    }
+
+    /**
+     * Back up idle sessions that changed since their last backup.  The sessions that went
+     * the longest without a backup are handed to the {@link SessionBackupScheduler} first.
+     * When no background processor is running there is no interval to spread the backups
+     * over, so they are written right away.
+     */
+    @Override
+    protected void processMaxIdleBackups() {
+        if (!getState().isAvailable() || maxIdleBackup < 0) {
+            return;
+        }
+
+        List<String> sessionIds = findSessionsDueForBackup();
+        SessionBackupScheduler scheduler = backupScheduler;
+        if (scheduler != null) {
+            scheduler.schedule(sessionIds, getBackupIntervalMillis());
+        } else {
+            for (String sessionId : sessionIds) {
+                backupSession(sessionId);
+            }
+        }
+    }
+
+    /**
+     * @return the ids of the sessions due for a backup, the ones that went the longest
+     * without a backup first
+     */
+    List<String> findSessionsDueForBackup() {
+        final Map<String, Long> lastBackupTimes = new HashMap<>();
+        for (Session session : findSessions()) {
+            synchronized (session) {
+                if (isBackupDue((StandardSession) session)) {
+                    lastBackupTimes.put(session.getIdInternal(), getLastBackupTime(session));
+                }
+            }
+        }
+
+        List<String> sessionIds = new ArrayList<>(lastBackupTimes.keySet());
+        Collections.sort(sessionIds, new Comparator<String>() {
+            @Override
+            public int compare(String id1, String id2) {
+                return lastBackupTimes.get(id1).compareTo(lastBackupTimes.get(id2));
+            }
+        });
+        return sessionIds;
+    }
+
+    /**
+     * Write an active session to the store if it is still due for a backup.
+     * @param id the session id
+     * @return the size in bytes of the written session, 0 if it is not known, or -1 if
+     * the session was not written
+     */
+    int backupSession(String id) {
+        StandardSession session = (StandardSession) sessions.get(id);
+        if (session == null || !getState().isAvailable()) {
+            return -1;
+        }
+        synchronized (session) {
+            if (!getState().isAvailable() || !isBackupDue(session)) {
+                return -1;
+            }
+            long lastAccessedTime = session.getLastAccessedTimeInternal();
+            try {
+                writeSession(session);
+            } catch (IOException e) {
+                // This is logged in writeSession()
+            }
+            session.setNote(PERSISTED_LAST_ACCESSED_TIME, Long.valueOf(lastAccessedTime));
+            session.setNote(LAST_BACKUP_TIME, Long.valueOf(System.currentTimeMillis()));
+            return getSessionSize(session);
+        }
+    }
+
+    /**
+     * The size of the session the last time it went through the store.
+     * @param id the session id
+     * @return the size in bytes or 0 if it is not known
+     */
+    int getSessionSize(String id) {
+        Session session = sessions.get(id);
+        return session != null ? getSessionSize(session) : 0;
+    }
+
+    private int getSessionSize(Session session) {
+        Integer size = (Integer) session.getNote(MongoSessionStore.SERIALIZED_SIZE_NOTE);
+        return size != null ? size.intValue() : 0;
+    }
+
+    /**
+     * @return the number of session backups waiting for the {@link SessionBackupScheduler}
+     */
+    public int getPendingBackupCount() {
+        SessionBackupScheduler scheduler = backupScheduler;
+        return scheduler != null ? scheduler.getPendingCount() : 0;
+    }
+
+    /**
+     * The estimated size of the active sessions, based on the size of each session the
+     * last time it went through the store.  Sessions that were never stored count as 0.
+     * @return the resident session bytes
+     */
+    public long getResidentSessionBytes() {
+        long residentBytes = 0;
+        for (Session session : findSessions()) {
+            residentBytes += getSessionSize(session);
+        }
+        return residentBytes;
+    }
+
+    /**
+     * @return the number of sessions swapped in from the store since startup, not counting
+     * the sessions loaded on startup
+     */
+    public long getSwapInCount() {
+        return swapInCount.get();
+    }
+
+    /**
+     * @return the number of sessions swapped out to the store since startup
+     */
+    public long getSwapOutCount() {
+        return swapOutCount.get();
+    }
+
+    /**
+     * @return the sessions swapped in per second between the last two persistence checks
+     */
+    public double getSwapInsPerSecond() {
+        return swapInsPerSecond;
+    }
+
+    private boolean isBackupDue(StandardSession session) {
+        if (!session.isValid()) {
+            return false;
+        }
+        Long persistedLastAccessedTime = (Long) session.getNote(PERSISTED_LAST_ACCESSED_TIME);
+        if (persistedLastAccessedTime != null
+                && session.getLastAccessedTimeInternal() == persistedLastAccessedTime.longValue()) {
+            return false;
+        }
+        return session.getIdleTimeInternal() / 1000L >= maxIdleBackup;
+    }
+
+    private long getLastBackupTime(Session session) {
+        Long lastBackupTime = (Long) session.getNote(LAST_BACKUP_TIME);
+        return lastBackupTime != null ? lastBackupTime.longValue() : session.getCreationTimeInternal();
+    }
+
+    /**
+     * The time between two runs of {@link #processMaxIdleBackups()}, which is the
+     * background processor delay of the closest container that has one multiplied by
+     * processExpiresFrequency.
+     * @return the interval in milliseconds or 0 if there is no background processor
+     */
+    long getBackupIntervalMillis() {
+        Container container = getContext();
+        while (container != null) {
+            int delay = container.getBackgroundProcessorDelay();
+            if (delay > 0) {
+                return delay * 1000L * processExpiresFrequency;
+            }
+            container = container.getParent();
+        }
+        return 0;
+    }
+
+    /**
+     * The maximum estimated size in bytes of the active sessions before idle sessions are
+     * swapped out to the store. {@code -1} means no limit.
+     * @return the maximum active session bytes
+     */
+    public long getMaxActiveSessionBytes() {
+        return maxActiveSessionBytes;
+    }
+
+    /**
+     * Set the maximum estimated size in bytes of the active sessions.
+     * @param maxActiveSessionBytes the maximum active session bytes or {@code -1}
+     */
+    public void setMaxActiveSessionBytes(long maxActiveSessionBytes) {
+        this.maxActiveSessionBytes = maxActiveSessionBytes;
+    }
+
+    /**
+     * Whether the largest idle sessions are swapped out first to get below
+     * maxActiveSessionBytes instead of the least recently used ones.
+     * @return whether the largest sessions are swapped out first
+     */
+    public boolean isSwapLargestSessionsFirst() {
+        return swapLargestSessionsFirst;
+    }
+
+    /**
+     * Set whether the largest idle sessions are swapped out first.
+     * @param swapLargestSessionsFirst whether the largest sessions are swapped out first
+     */
+    public void setSwapLargestSessionsFirst(boolean swapLargestSessionsFirst) {
+        this.swapLargestSessionsFirst = swapLargestSessionsFirst;
+    }
+
+    /**
+     * The maximum number of session backups written per second. {@code -1} means no limit
+     * other than spreading the backups over the backup interval.
+     * @return the maximum backup writes per second
+     */
+    public int getMaxBackupWritesPerSecond() {
+        return maxBackupWritesPerSecond;
+    }
+
+    /**
+     * Set the maximum number of session backups written per second.
+     * @param maxBackupWritesPerSecond the maximum backup writes per second or {@code -1}
+     */
+    public void setMaxBackupWritesPerSecond(int maxBackupWritesPerSecond) {
+        this.maxBackupWritesPerSecond = maxBackupWritesPerSecond;
+    }
+
+    /**
+     * The maximum number of session bytes backed up per second, based on the size of each
+     * session the last time it was stored. {@code -1} means no limit.
+     * @return the maximum backup bytes per second
+     */
+    public int getMaxBackupBytesPerSecond() {
+        return maxBackupBytesPerSecond;
+    }
+
+    /**
+     * Set the maximum number of session bytes backed up per second.
+     * @param maxBackupBytesPerSecond the maximum backup bytes per second or {@code -1}
+     */
+    public void setMaxBackupBytesPerSecond(int maxBackupBytesPerSecond) {
+        this.maxBackupBytesPerSecond = maxBackupBytesPerSecond;
+    }
+
+    /**
+     * The part of the backup interval, in percent, used as the upper bound of the random
+     * delay before each node starts writing its backups.
+     * @return the backup jitter percentage
+     */
+    public int getBackupJitterPercent() {
+        return backupJitterPercent;
+    }
+
+    /**
+     * Set the part of the backup interval used as random per node delay.
+     * @param backupJitterPercent a percentage between 0 and 100
+     */
+    public void setBackupJitterPercent(int backupJitterPercent) {
+        this.backupJitterPercent = backupJitterPercent;
     }
 
     /**
@@ -48,6 +491,13 @@ public class MongoSessionManager extends PersistentManagerBase {
         private String password;
         private String hosts;
         private Context context;
+        private int maxBackupWritesPerSecond = -1;
+        private int maxBackupBytesPerSecond = -1;
+        private int backupJitterPercent = 25;
+        private int maxIdleSwap = 0;
+        private int minIdleSwap = -1;
+        private long maxActiveSessionBytes = -1;
+        private boolean swapLargestSessionsFirst = false;
 
         /**
          * the mongo database to use
@@ -129,6 +579,79 @@ public class MongoSessionManager extends PersistentManagerBase {
             return this;
         }
 
+        /**
+         * the maximum number of session backups written per second. -1 means no limit.
+         * @param maxBackupWritesPerSecond
+         * @return
+         */
+        public Builder setMaxBackupWritesPerSecond(int maxBackupWritesPerSecond) {
+            this.maxBackupWritesPerSecond = maxBackupWritesPerSecond;
+            return this;
+        }
+
+        /**
+         * the maximum number of session bytes backed up per second. -1 means no limit.
+         * @param maxBackupBytesPerSecond
+         * @return
+         */
+        public Builder setMaxBackupBytesPerSecond(int maxBackupBytesPerSecond) {
+            this.maxBackupBytesPerSecond = maxBackupBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * the percentage of the backup interval used as random delay before a node starts its backups
+         * @param backupJitterPercent
+         * @return
+         */
+        public Builder setBackupJitterPercent(int backupJitterPercent) {
+            this.backupJitterPercent = backupJitterPercent;
+            return this;
+        }
+
+        /**
+         * the maximum time in seconds a session may be idle before it is swapped out. -1 means
+         * sessions are not swapped out just because of inactivity.
+         * @param maxIdleSwap
+         * @return
+         */
+        public Builder setMaxIdleSwap(int maxIdleSwap) {
+            this.maxIdleSwap = maxIdleSwap;
+            return this;
+        }
+
+        /**
+         * the minimum time in seconds a session must be idle before it is swapped out to keep the
+         * active sessions below maxActiveSessions or maxActiveSessionBytes. -1 means sessions are
+         * not swapped out to keep the active sessions down.
+         * @param minIdleSwap
+         * @return
+         */
+        public Builder setMinIdleSwap(int minIdleSwap) {
+            this.minIdleSwap = minIdleSwap;
+            return this;
+        }
+
+        /**
+         * the maximum estimated size in bytes of the active sessions. -1 means no limit.
+         * @param maxActiveSessionBytes
+         * @return
+         */
+        public Builder setMaxActiveSessionBytes(long maxActiveSessionBytes) {
+            this.maxActiveSessionBytes = maxActiveSessionBytes;
+            return this;
+        }
+
+        /**
+         * swap out the largest idle sessions first instead of the least recently used ones
+         * @param swapLargestSessionsFirst
+         * @return
+         */
+        public Builder setSwapLargestSessionsFirst(boolean swapLargestSessionsFirst) {
+            this.swapLargestSessionsFirst = swapLargestSessionsFirst;
+            return this;
+        }
+
         /**
          * build it!
          * @return
@@ -138,6 +661,13 @@ public class MongoSessionManager extends PersistentManagerBase {
             MongoSessionManager mongoSessionManager = new MongoSessionManager();
             mongoSessionManager.setSessionIdGenerator(sessionIdGenerator);
             mongoSessionManager.setContext(context);
+            mongoSessionManager.setMaxBackupWritesPerSecond(maxBackupWritesPerSecond);
+            mongoSessionManager.setMaxBackupBytesPerSecond(maxBackupBytesPerSecond);
+            mongoSessionManager.setBackupJitterPercent(backupJitterPercent);
+            mongoSessionManager.setMaxIdleSwap(maxIdleSwap);
+            mongoSessionManager.setMinIdleSwap(minIdleSwap);
+            mongoSessionManager.setMaxActiveSessionBytes(maxActiveSessionBytes);
+            mongoSessionManager.setSwapLargestSessionsFirst(swapLargestSessionsFirst);
             MongoSessionStore mongoSessionStore = new MongoSessionStore();
             mongoSessionStore.setManager(mongoSessionManager);
             mongoSessionStore.setDatabaseName(databaseName);
@@ -39,6 +39,11 @@ public class MongoSessionStore extends StoreBase {
     public static final String EXPIRATION_TIME = "expirationTime";
     public static final String DATA_FIELD = "data";
     public static final String LAST_MODIFIED_FIELD = "lastModified";
+    /**
+     * Session note holding the length in bytes of the session the last time it was
+     * serialized to or deserialized from mongo.
+     */
+    public static final String SERIALIZED_SIZE_NOTE = MongoSessionStore.class.getName() + ".serializedSize";
 
     private MongoDatabase mongoDatabase;
     private MongoCollection<Document> mongoCollection;
@@ -195,7 +200,9 @@ public class MongoSessionStore extends StoreBase {
         if (mongoSession != null && !mongoSession.isEmpty()) {
             final Binary data = (Binary) mongoSession.get(0).get(DATA_FIELD);
             if (data != null) {
-                return deserializeSession(data.getData());
+                StandardSession session = deserializeSession(data.getData());
+                session.setNote(SERIALIZED_SIZE_NOTE, Integer.valueOf(data.getData().length));
+                return session;
             }
         }
         throw new IOException("count of find record with id " + id);
@@ -264,6 +271,7 @@ public class MongoSessionStore extends StoreBase {
             this.manager.getContext().getLogger().fatal("Unable to save session to MongoDB", e);
             throw e;
         }
+        session.setNote(SERIALIZED_SIZE_NOTE, Integer.valueOf(serializedObject.length));
     }
 
     private static Document getDocument(DBObject doc) {
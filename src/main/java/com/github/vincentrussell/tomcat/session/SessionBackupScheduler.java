@@ -0,0 +1,162 @@
+package com.github.vincentrussell.tomcat.session;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the session backups found by {@link MongoSessionManager#processMaxIdleBackups()}
+ * evenly over the backup interval instead of writing them all in one burst.  Each
+ * cycle starts after a random per-node delay so that nodes restarted together do not
+ * keep writing to mongo at the same moment, and the writes can be capped by a
+ * writes per second and a bytes per second budget.
+ *
+ * @author Vincent Russell
+ */
+class SessionBackupScheduler {
+
+    static final long TICK_MILLIS = 100;
+
+    private final MongoSessionManager manager;
+    private final int maxWritesPerSecond;
+    private final RateLimiter bytesLimiter;
+    private final int jitterPercent;
+    private final Random random = new Random();
+    private final ScheduledExecutorService executorService;
+
+    private volatile Cycle cycle;
+    private volatile boolean stopped;
+
+    SessionBackupScheduler(MongoSessionManager manager, int maxWritesPerSecond,
+                           int maxBytesPerSecond, int jitterPercent) {
+        this.manager = manager;
+        this.maxWritesPerSecond = maxWritesPerSecond;
+        this.bytesLimiter = maxBytesPerSecond > 0 ? RateLimiter.create(maxBytesPerSecond) : null;
+        this.jitterPercent = Math.max(0, Math.min(100, jitterPercent));
+        this.executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("mongo-session-backup-%d")
+                .build());
+    }
+
+    /**
+     * start draining scheduled backups
+     */
+    void start() {
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } catch (RuntimeException e) {
+                    manager.getContext().getLogger().error("Unable to back up sessions to MongoDB", e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stop draining; backups still pending are dropped
+     */
+    void stop() {
+        stopped = true;
+        executorService.shutdownNow();
+        try {
+            executorService.awaitTermination(TICK_MILLIS * 10, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replace the pending backups with a new cycle.  Sessions left over from the previous
+     * cycle are still dirty, so they are expected to be part of the new list again.
+     * @param sessionIds the ids of the sessions to back up, most urgent first
+     * @param intervalMillis the time in which the backups should be spread
+     */
+    void schedule(List<String> sessionIds, long intervalMillis) {
+        long jitterMillis = intervalMillis * jitterPercent / 100;
+        long delayMillis = jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0;
+        long spreadMillis = Math.max(TICK_MILLIS, intervalMillis - jitterMillis);
+        double writesPerSecond = sessionIds.size() * 1000.0 / spreadMillis;
+        if (maxWritesPerSecond > 0) {
+            writesPerSecond = Math.min(writesPerSecond, maxWritesPerSecond);
+        }
+        this.cycle = new Cycle(new ConcurrentLinkedQueue<>(sessionIds),
+                sessionIds.isEmpty() ? null : RateLimiter.create(writesPerSecond),
+                System.currentTimeMillis() + delayMillis);
+    }
+
+    /**
+     * @return the number of backups waiting to be written
+     */
+    int getPendingCount() {
+        Cycle current = cycle;
+        return current != null ? current.pending.size() : 0;
+    }
+
+    void drain() {
+        Cycle current = cycle;
+        if (current == null || current.writesLimiter == null
+                || System.currentTimeMillis() < current.notBefore) {
+            return;
+        }
+        String id;
+        while ((id = current.pending.peek()) != null && current == cycle && !stopped) {
+            if (!current.writesLimiter.tryAcquire()) {
+                return;
+            }
+            // this thread only drains, so it can wait for the bytes budget once it holds a write permit
+            int estimatedSize = manager.getSessionSize(id);
+            if (bytesLimiter != null && estimatedSize > 0 && !acquireBytes(estimatedSize)) {
+                return;
+            }
+            current.pending.poll();
+            int writtenSize = manager.backupSession(id);
+            if (bytesLimiter != null && estimatedSize <= 0 && writtenSize > 0) {
+                // the size was only known after the write, so charge it to the next one
+                if (!acquireBytes(writtenSize)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for the bytes budget in short steps, since {@link RateLimiter#acquire(int)} can't
+     * be interrupted and a large session can take many seconds to pay for.
+     * @return false if the scheduler was stopped while waiting
+     */
+    private boolean acquireBytes(int permits) {
+        while (!stopped && !Thread.currentThread().isInterrupted()) {
+            if (bytesLimiter.tryAcquire(permits, TICK_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return false;
+    }
+
+    private static class Cycle {
+        private final Queue<String> pending;
+        private final RateLimiter writesLimiter;
+        private final long notBefore;
+
+        private Cycle(Queue<String> pending, RateLimiter writesLimiter, long notBefore) {
+            this.pending = pending;
+            this.writesLimiter = writesLimiter;
+            this.notBefore = notBefore;
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package com.github.vincentrussell.tomcat.session;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.mongodb.MongoClient;
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.bson.Document;
+import org.springframework.util.SocketUtils;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Boots several embedded tomcats that share one mongo collection through the
+ * {@link MongoSessionManager} and drives non-sticky traffic against them.  Every
+ * request of a virtual user goes to a random node, so the report shows how the
+ * session manager behaves when sessions move between nodes.
+ *
+ * @author Vincent Russell
+ */
+public class LoadTestHarness implements Closeable {
+
+    public static final String SESSION_PATH = "/session";
+    private static final String COUNTER_ATTRIBUTE = "counter";
+    private static final String PAYLOAD_ATTRIBUTE = "payload";
+    private static final String SESSION_COOKIE = "JSESSIONID";
+
+    private final Builder config;
+    private final List<Tomcat> tomcats = new ArrayList<>();
+    private final List<File> baseDirs = new ArrayList<>();
+    private final List<Integer> ports = new ArrayList<>();
+
+    private LoadTestHarness(Builder config) {
+        this.config = config;
+    }
+
+    private void startNodes() throws LifecycleException {
+        for (int i = 0; i < config.nodes; i++) {
+            int port = SocketUtils.findAvailableTcpPort();
+            File baseDir = Files.createTempDir();
+            baseDirs.add(baseDir);
+
+            Tomcat tomcat = new Tomcat();
+            tomcat.setBaseDir(baseDir.getAbsolutePath());
+            tomcat.setPort(port);
+            tomcat.getEngine().setName("node" + i);
+            tomcat.getConnector();
+
+            Context context = tomcat.addContext("", baseDir.getAbsolutePath());
+            context.setBackgroundProcessorDelay(config.backgroundProcessorDelay);
+            context.setManager(createMongoSessionManager());
+            Tomcat.addServlet(context, "session", new SessionServlet());
+            context.addServletMappingDecoded(SESSION_PATH, "session");
+
+            tomcats.add(tomcat);
+            tomcat.start();
+            ports.add(port);
+        }
+    }
+
+    private MongoSessionManager createMongoSessionManager() {
+        MongoSessionManager mongoSessionManager = new MongoSessionManager();
+        mongoSessionManager.setMaxIdleSwap(config.maxIdleSwap);
+        mongoSessionManager.setMinIdleSwap(config.minIdleSwap);
+        mongoSessionManager.setMaxActiveSessionBytes(config.maxActiveSessionBytes);
+        mongoSessionManager.setSwapLargestSessionsFirst(config.swapLargestSessionsFirst);
+        mongoSessionManager.setMaxBackupWritesPerSecond(config.maxBackupWritesPerSecond);
+        mongoSessionManager.setMaxBackupBytesPerSecond(config.maxBackupBytesPerSecond);
+        mongoSessionManager.setBackupJitterPercent(config.backupJitterPercent);
+        mongoSessionManager.setMaxIdleBackup(config.maxIdleBackup);
+        mongoSessionManager.setProcessExpiresFrequency(config.processExpiresFrequency);
+        MongoSessionStore mongoSessionStore = new MongoSessionStore();
+        mongoSessionStore.setDatabaseName(config.databaseName);
+        mongoSessionStore.setHosts("localhost:" + config.embeddedMongo.getPort());
+        mongoSessionStore.setUsername(config.username);
+        mongoSessionStore.setPassword(config.password);
+        mongoSessionManager.setStore(mongoSessionStore);
+        return mongoSessionManager;
+    }
+
+    /**
+     * drive traffic against the nodes for the configured duration
+     * @return the results of the run
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public Report run() throws InterruptedException, ExecutionException {
+        Document opCountersBefore = getOpCounters();
+        long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(config.threads);
+        List<Future<Worker>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < config.threads; i++) {
+                final Worker worker = new Worker(i, deadline);
+                futures.add(executorService.submit(worker, worker));
+            }
+            Report report = new Report();
+            List<Long> latencies = new ArrayList<>();
+            for (Future<Worker> future : futures) {
+                Worker worker = future.get();
+                report.requests += worker.latencies.size();
+                report.errors += worker.errors;
+                report.lostUpdates += worker.lostUpdates;
+                report.staleReads += worker.staleReads;
+                report.lostSessions += worker.lostSessions;
+                latencies.addAll(worker.latencies);
+            }
+            report.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Collections.sort(latencies);
+            report.p50Micros = percentile(latencies, 50);
+            report.p90Micros = percentile(latencies, 90);
+            report.p99Micros = percentile(latencies, 99);
+            report.maxMicros = latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1);
+            Document opCountersAfter = getOpCounters();
+            for (String key : opCountersAfter.keySet()) {
+                report.mongoOps += ((Number) opCountersAfter.get(key)).longValue()
+                        - ((Number) opCountersBefore.get(key)).longValue();
+            }
+            return report;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private Document getOpCounters() {
+        MongoClient mongoClient = config.embeddedMongo.getMongoClient();
+        return (Document) mongoClient.getDatabase("admin")
+                .runCommand(new Document("serverStatus", 1)).get("opcounters");
+    }
+
+    private static long percentile(List<Long> sortedLatencies, int percentile) {
+        if (sortedLatencies.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size()) - 1;
+        return sortedLatencies.get(Math.max(0, index));
+    }
+
+    @Override
+    public void close() throws IOException {
+        List<Exception> failures = new ArrayList<>();
+        for (Tomcat tomcat : tomcats) {
+            try {
+                tomcat.stop();
+            } catch (LifecycleException | RuntimeException e) {
+                failures.add(e);
+            }
+            try {
+                tomcat.destroy();
+            } catch (LifecycleException | RuntimeException e) {
+                failures.add(e);
+            }
+        }
+        for (File baseDir : baseDirs) {
+            try {
+                MoreFiles.deleteRecursively(baseDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+            } catch (IOException | RuntimeException e) {
+                failures.add(e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            IOException exception = new IOException("Unable to shut down " + failures.size()
+                    + " part(s) of the load test harness");
+            for (Exception failure : failures) {
+                exception.addSuppressed(failure);
+            }
+            throw exception;
+        }
+    }
+
+    /**
+     * Drives the virtual users whose number modulo the thread count equals the worker id.
+     * Each user remembers its session cookie and the counter it expects, so that a write
+     * that does not come back with the next counter is counted as a lost update.
+     */
+    private class Worker implements Runnable {
+
+        private final long deadline;
+        private final Random random;
+        private final String[] sessionIds;
+        private final int[] expectedCounters;
+        private final List<Long> latencies = new ArrayList<>();
+        private long errors;
+        private long lostUpdates;
+        private long staleReads;
+        private long lostSessions;
+
+        private Worker(int id, long deadline) {
+            this.deadline = deadline;
+            this.random = new Random(config.seed + id);
+            int users = config.users / config.threads + (id < config.users % config.threads ? 1 : 0);
+            this.sessionIds = new String[users];
+            this.expectedCounters = new int[users];
+        }
+
+        @Override
+        public void run() {
+            int user = 0;
+            while (sessionIds.length > 0 && System.nanoTime() < deadline
+                    && !Thread.currentThread().isInterrupted()) {
+                boolean write = random.nextInt(100) < config.writePercent;
+                int port = ports.get(random.nextInt(ports.size()));
+                long start = System.nanoTime();
+                try {
+                    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+                            + SESSION_PATH + "?write=" + write + "&size=" + config.sessionSizeBytes).openConnection();
+                    if (sessionIds[user] != null) {
+                        connection.setRequestProperty("Cookie", SESSION_COOKIE + "=" + sessionIds[user]);
+                    }
+                    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("unexpected response code " + connection.getResponseCode());
+                    }
+                    int counter;
+                    try (InputStream inputStream = connection.getInputStream()) {
+                        counter = Integer.parseInt(new String(ByteStreams.toByteArray(inputStream),
+                                StandardCharsets.UTF_8).trim());
+                    }
+                    latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                    String newSessionId = getSessionCookie(connection);
+                    if (newSessionId != null && !newSessionId.equals(sessionIds[user])) {
+                        if (sessionIds[user] != null) {
+                            lostSessions++;
+                        }
+                        sessionIds[user] = newSessionId;
+                        expectedCounters[user] = 0;
+                    }
+                    if (write && counter != expectedCounters[user] + 1) {
+                        lostUpdates++;
+                    } else if (!write && counter < expectedCounters[user]) {
+                        staleReads++;
+                    }
+                    expectedCounters[user] = write ? Math.max(counter, expectedCounters[user] + 1)
+                            : Math.max(counter, expectedCounters[user]);
+                } catch (IOException | NumberFormatException e) {
+                    errors++;
+                }
+                user = (user + 1) % sessionIds.length;
+            }
+        }
+    }
+
+    private static String getSessionCookie(HttpURLConnection connection) {
+        List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        for (String cookie : cookies) {
+            if (cookie.startsWith(SESSION_COOKIE + "=")) {
+                int end = cookie.indexOf(';');
+                return cookie.substring(SESSION_COOKIE.length() + 1, end >= 0 ? end : cookie.length());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Increments the session counter and replaces the payload on a write, and only
+     * returns the counter on a read.
+     */
+    private static class SessionServlet extends HttpServlet {
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+            HttpSession session = req.getSession(true);
+            Integer counter = (Integer) session.getAttribute(COUNTER_ATTRIBUTE);
+            int value = counter != null ? counter.intValue() : 0;
+            if (Boolean.parseBoolean(req.getParameter("write"))) {
+                value++;
+                byte[] payload = new byte[Integer.parseInt(req.getParameter("size"))];
+                new Random().nextBytes(payload);
+                session.setAttribute(COUNTER_ATTRIBUTE, Integer.valueOf(value));
+                session.setAttribute(PAYLOAD_ATTRIBUTE, payload);
+            }
+            resp.setContentType("text/plain");
+            resp.getWriter().print(value);
+        }
+    }
+
+    /**
+     * Results of a {@link LoadTestHarness#run()}
+     */
+    public static class Report {
+
+        private long requests;
+        private long errors;
+        private long lostUpdates;
+        private long staleReads;
+        private long lostSessions;
+        private long elapsedMillis;
+        private long p50Micros;
+        private long p90Micros;
+        private long p99Micros;
+        private long maxMicros;
+        private long mongoOps;
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return writes that came back with a counter other than the one expected
+         */
+        public long getLostUpdates() {
+            return lostUpdates;
+        }
+
+        /**
+         * @return reads that came back with a counter lower than one already seen
+         */
+        public long getStaleReads() {
+            return staleReads;
+        }
+
+        /**
+         * @return requests for which a node handed out a new session instead of the existing one
+         */
+        public long getLostSessions() {
+            return lostSessions;
+        }
+
+        public double getRequestsPerSecond() {
+            return elapsedMillis > 0 ? requests * 1000.0 / elapsedMillis : 0;
+        }
+
+        public double getMongoOpsPerSecond() {
+            return elapsedMillis > 0 ? mongoOps * 1000.0 / elapsedMillis : 0;
+        }
+
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("requests=%d errors=%d elapsed=%dms throughput=%.1f req/s "
+                            + "latency p50=%dus p90=%dus p99=%dus max=%dus mongo=%.1f ops/s "
+                            + "lostUpdates=%d staleReads=%d lostSessions=%d",
+                    requests, errors, elapsedMillis, getRequestsPerSecond(), p50Micros, p90Micros,
+                    p99Micros, maxMicros, getMongoOpsPerSecond(), lostUpdates, staleReads, lostSessions);
+        }
+    }
+
+    /**
+     * Builder for {@link LoadTestHarness}
+     */
+    public static class Builder {
+
+        /**
+         * the session manager settings default to the ones a new {@link MongoSessionManager} ships with
+         */
+        private static final MongoSessionManager DEFAULTS = new MongoSessionManager();
+
+        private EmbeddedMongo embeddedMongo;
+        private String databaseName = EmbeddedMongo.DEFAULT_DATABASE_NAME;
+        private String username;
+        private String password;
+        private int nodes = 3;
+        private int users = 50;
+        private int threads = 8;
+        private int sessionSizeBytes = 1024;
+        private int writePercent = 20;
+        private int durationSeconds = 30;
+        private long seed = 42;
+        private int backgroundProcessorDelay = -1;
+        private int processExpiresFrequency = DEFAULTS.getProcessExpiresFrequency();
+        private int maxIdleSwap = DEFAULTS.getMaxIdleSwap();
+        private int maxIdleBackup = DEFAULTS.getMaxIdleBackup();
+        private int minIdleSwap = DEFAULTS.getMinIdleSwap();
+        private long maxActiveSessionBytes = DEFAULTS.getMaxActiveSessionBytes();
+        private boolean swapLargestSessionsFirst = DEFAULTS.isSwapLargestSessionsFirst();
+        private int maxBackupWritesPerSecond = DEFAULTS.getMaxBackupWritesPerSecond();
+        private int maxBackupBytesPerSecond = DEFAULTS.getMaxBackupBytesPerSecond();
+        private int backupJitterPercent = DEFAULTS.getBackupJitterPercent();
+
+        /**
+         * the mongo the nodes store their sessions in
+         * @param embeddedMongo
+         * @return
+         */
+        public Builder setEmbeddedMongo(EmbeddedMongo embeddedMongo) {
+            this.embeddedMongo = embeddedMongo;
+            return this;
+        }
+
+        /**
+         * the mongo database to use
+         * @param databaseName
+         * @return
+         */
+        public Builder setDatabaseName(String databaseName) {
+            this.databaseName = databaseName;
+            return this;
+        }
+
+        /**
+         * the login username
+         * @param username
+         * @return
+         */
+        public Builder setUsername(String username) {
+            this.username = username;
+            return this;
+        }
+
+        /**
+         * the login password
+         * @param password
+         * @return
+         */
+        public Builder setPassword(String password) {
+            this.password = password;
+            return this;
+        }
+
+        /**
+         * the number of tomcats to boot
+         * @param nodes
+         * @return
+         */
+        public Builder setNodes(int nodes) {
+            this.nodes = nodes;
+            return this;
+        }
+
+        /**
+         * the number of virtual users, each with its own session
+         * @param users
+         * @return
+         */
+        public Builder setUsers(int users) {
+            this.users = users;
+            return this;
+        }
+
+        /**
+         * the number of client threads sending requests
+         * @param threads
+         * @return
+         */
+        public Builder setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * the size of the payload stored in the session on every write
+         * @param sessionSizeBytes
+         * @return
+         */
+        public Builder setSessionSizeBytes(int sessionSizeBytes) {
+            this.sessionSizeBytes = sessionSizeBytes;
+            return this;
+        }
+
+        /**
+         * the percentage of requests that change the session
+         * @param writePercent
+         * @return
+         */
+        public Builder setWritePercent(int writePercent) {
+            this.writePercent = writePercent;
+            return this;
+        }
+
+        /**
+         * how long to send traffic for
+         * @param durationSeconds
+         * @return
+         */
+        public Builder setDurationSeconds(int durationSeconds) {
+            this.durationSeconds = durationSeconds;
+            return this;
+        }
+
+        /**
+         * the seed used to pick request types and nodes, so runs are repeatable
+         * @param seed
+         * @return
+         */
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * the background processor delay in seconds of each tomcat context. -1, the default, uses the
+         * delay of the engine, which is 10 seconds in tomcat
+         * @param backgroundProcessorDelay
+         * @return
+         */
+        public Builder setBackgroundProcessorDelay(int backgroundProcessorDelay) {
+            this.backgroundProcessorDelay = backgroundProcessorDelay;
+            return this;
+        }
+
+        /**
+         * the processExpiresFrequency of each session manager
+         * @param processExpiresFrequency
+         * @return
+         */
+        public Builder setProcessExpiresFrequency(int processExpiresFrequency) {
+            this.processExpiresFrequency = processExpiresFrequency;
+            return this;
+        }
+
+        /**
+         * the maxIdleSwap of each session manager
+         * @param maxIdleSwap
+         * @return
+         */
+        public Builder setMaxIdleSwap(int maxIdleSwap) {
+            this.maxIdleSwap = maxIdleSwap;
+            return this;
+        }
+
+        /**
+         * the maxIdleBackup of each session manager
+         * @param maxIdleBackup
+         * @return
+         */
+        public Builder setMaxIdleBackup(int maxIdleBackup) {
+            this.maxIdleBackup = maxIdleBackup;
+            return this;
+        }
+
+        /**
+         * the minIdleSwap of each session manager
+         * @param minIdleSwap
+         * @return
+         */
+        public Builder setMinIdleSwap(int minIdleSwap) {
+            this.minIdleSwap = minIdleSwap;
+            return this;
+        }
+
+        /**
+         * the maxActiveSessionBytes of each session manager
+         * @param maxActiveSessionBytes
+         * @return
+         */
+        public Builder setMaxActiveSessionBytes(long maxActiveSessionBytes) {
+            this.maxActiveSessionBytes = maxActiveSessionBytes;
+            return this;
+        }
+
+        /**
+         * the swapLargestSessionsFirst of each session manager
+         * @param swapLargestSessionsFirst
+         * @return
+         */
+        public Builder setSwapLargestSessionsFirst(boolean swapLargestSessionsFirst) {
+            this.swapLargestSessionsFirst = swapLargestSessionsFirst;
+            return this;
+        }
+
+        /**
+         * the maxBackupWritesPerSecond of each session manager
+         * @param maxBackupWritesPerSecond
+         * @return
+         */
+        public Builder setMaxBackupWritesPerSecond(int maxBackupWritesPerSecond) {
+            this.maxBackupWritesPerSecond = maxBackupWritesPerSecond;
+            return this;
+        }
+
+        /**
+         * the maxBackupBytesPerSecond of each session manager
+         * @param maxBackupBytesPerSecond
+         * @return
+         */
+        public Builder setMaxBackupBytesPerSecond(int maxBackupBytesPerSecond) {
+            this.maxBackupBytesPerSecond = maxBackupBytesPerSecond;
+            return this;
+        }
+
+        /**
+         * the backupJitterPercent of each session manager
+         * @param backupJitterPercent
+         * @return
+         */
+        public Builder setBackupJitterPercent(int backupJitterPercent) {
+            this.backupJitterPercent = backupJitterPercent;
+            return this;
+        }
+
+        /**
+         * boot the tomcats
+         * @return
+         * @throws LifecycleException
+         */
+        public LoadTestHarness build() throws LifecycleException {
+            LoadTestHarness loadTestHarness = new LoadTestHarness(this);
+            try {
+                loadTestHarness.startNodes();
+            } catch (LifecycleException | RuntimeException e) {
+                try {
+                    loadTestHarness.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+                throw e;
+            }
+            return loadTestHarness;
+        }
+    }
+}
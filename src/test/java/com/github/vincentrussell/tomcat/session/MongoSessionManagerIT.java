@@ -18,7 +18,10 @@ import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.util.SocketUtils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.hasItems;
@@ -43,6 +46,7 @@ public class MongoSessionManagerIT {
     public Timeout timeout = new Timeout(180000);
     private MongoDatabase mongoDatabase;
     private MongoCollection<Document> mongoCollection;
+    private List<MongoSessionManager> mongoSessionManagers = new ArrayList<>();
 
     @BeforeClass
     public static void beforeClass() throws IOException {
@@ -68,20 +72,64 @@ public class MongoSessionManagerIT {
         mongoCollection.drop();
     }
 
+    @After
+    public void after() throws LifecycleException {
+        for (MongoSessionManager mongoSessionManager : mongoSessionManagers) {
+            mongoSessionManager.stop();
+        }
+        mongoSessionManagers.clear();
+    }
+
     private MongoSessionManager getMongoSessionManager() {
+        return build(getMongoSessionManagerBuilder());
+    }
+
+    private MongoSessionManager build(MongoSessionManager.Builder builder) {
         try {
-            return new MongoSessionManager.Builder()
-                    .setContext(mockContext)
-                    .setDatabaseName("local")
-                    .setHosts("localhost:" + port)
-                    .setUsername(USERNAME)
-                    .setPassword(PASSWORD)
-                    .build();
+            MongoSessionManager mongoSessionManager = builder.build();
+            mongoSessionManagers.add(mongoSessionManager);
+            return mongoSessionManager;
         } catch (LifecycleException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private long waitForBackups(long count) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + TimeUnit.SECONDS.toMillis(60);
+        while (mongoCollection.count() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, mongoCollection.count());
+        return System.currentTimeMillis() - start;
+    }
+
+    private MongoSessionManager.Builder getMongoSessionManagerBuilder() {
+        return new MongoSessionManager.Builder()
+                .setContext(mockContext)
+                .setDatabaseName("local")
+                .setHosts("localhost:" + port)
+                .setUsername(USERNAME)
+                .setPassword(PASSWORD);
+    }
+
+    private void createIdleSessions(MongoSessionManager mongoSessionManager, int count) {
+        for (int i = 0; i < count; i++) {
+            createIdleSession(mongoSessionManager, 0, TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+
+    private StandardSession createIdleSession(MongoSessionManager mongoSessionManager, int attributeSize,
+                                              long idleMillis) {
+        StandardSession session = (StandardSession) mongoSessionManager.createSession(
+                mongoSessionManager.getSessionIdGenerator().generateSessionId());
+        session.setAttribute("data", new byte[attributeSize]);
+        long idleSince = System.currentTimeMillis() - idleMillis;
+        ReflectionTestUtils.setField(session, "lastAccessedTime", idleSince);
+        ReflectionTestUtils.setField(session, "thisAccessedTime", idleSince);
+        return session;
+    }
+
     @Test
     public void createCollectionOnStartup() {
         MongoClient mongoClient = embeddedMongo.getMongoClient();
@@ -169,6 +217,7 @@ public class MongoSessionManagerIT {
         mongoSessionManager = getMongoSessionManager();
         Session[] sessions = mongoSessionManager.findSessions();
         assertEquals(1, sessions.length);
+        assertEquals(0, mongoSessionManager.getSwapInCount());
     }
 
     @Test
@@ -190,4 +239,153 @@ public class MongoSessionManagerIT {
         assertEquals(mongoSessionManager.listSessionIds(), mongoSessionManager2.listSessionIds());
     }
 
+    @Test
+    public void backupsAreSpreadOverTheInterval() throws InterruptedException {
+        when(mockContext.getBackgroundProcessorDelay()).thenReturn(1);
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setBackupJitterPercent(0));
+        assertEquals(TimeUnit.SECONDS.toMillis(6), mongoSessionManager.getBackupIntervalMillis());
+        createIdleSessions(mongoSessionManager, 10);
+        mongoSessionManager.processPersistenceChecks();
+        long elapsed = waitForBackups(10);
+        assertTrue("backed up in " + elapsed + "ms", elapsed >= TimeUnit.SECONDS.toMillis(4));
+        assertEquals(0, mongoSessionManager.getPendingBackupCount());
+        mongoSessionManager.processPersistenceChecks();
+        assertEquals(0, mongoSessionManager.getPendingBackupCount());
+    }
+
+    @Test
+    public void backupWritesPerSecondIsLimited() throws InterruptedException {
+        when(mockContext.getBackgroundProcessorDelay()).thenReturn(1);
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setBackupJitterPercent(0)
+                .setMaxBackupWritesPerSecond(1));
+        createIdleSessions(mongoSessionManager, 10);
+        mongoSessionManager.processPersistenceChecks();
+        long elapsed = waitForBackups(10);
+        assertTrue("backed up in " + elapsed + "ms", elapsed >= TimeUnit.SECONDS.toMillis(8));
+    }
+
+    @Test
+    public void backupBytesPerSecondIsLimited() throws InterruptedException {
+        when(mockContext.getBackgroundProcessorDelay()).thenReturn(1);
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setBackupJitterPercent(0)
+                .setMaxBackupWritesPerSecond(5)
+                .setMaxBackupBytesPerSecond(10000));
+        for (int i = 0; i < 10; i++) {
+            createIdleSession(mongoSessionManager, 10000, TimeUnit.MINUTES.toMillis(1));
+        }
+        mongoSessionManager.processPersistenceChecks();
+        long elapsed = waitForBackups(10);
+        assertTrue("backed up in " + elapsed + "ms", elapsed >= TimeUnit.SECONDS.toMillis(7));
+        assertEquals(0, mongoSessionManager.getPendingBackupCount());
+    }
+
+    @Test
+    public void sessionsWithOldestBackupAreBackedUpFirst() {
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1));
+        long now = System.currentTimeMillis();
+        StandardSession newest = createIdleSession(mongoSessionManager, 0, TimeUnit.MINUTES.toMillis(1));
+        StandardSession oldest = createIdleSession(mongoSessionManager, 0, TimeUnit.MINUTES.toMillis(1));
+        StandardSession older = createIdleSession(mongoSessionManager, 0, TimeUnit.MINUTES.toMillis(1));
+        ReflectionTestUtils.setField(newest, "creationTime", now - TimeUnit.MINUTES.toMillis(1));
+        ReflectionTestUtils.setField(oldest, "creationTime", now - TimeUnit.MINUTES.toMillis(3));
+        ReflectionTestUtils.setField(older, "creationTime", now - TimeUnit.MINUTES.toMillis(2));
+        assertEquals(Arrays.asList(oldest.getId(), older.getId(), newest.getId()),
+                mongoSessionManager.findSessionsDueForBackup());
+    }
+
+    @Test
+    public void swapLeastRecentlyUsedSessionsOverByteBudget() throws IOException, InterruptedException,
+            LifecycleException {
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setMinIdleSwap(0));
+        StandardSession oldest = createIdleSession(mongoSessionManager, 10000, TimeUnit.MINUTES.toMillis(3));
+        StandardSession older = createIdleSession(mongoSessionManager, 10000, TimeUnit.MINUTES.toMillis(2));
+        StandardSession newest = createIdleSession(mongoSessionManager, 10000, TimeUnit.MINUTES.toMillis(1));
+        String oldestId = oldest.getId();
+        mongoSessionManager.processPersistenceChecks();
+        assertEquals(3, mongoCollection.count());
+        long residentSessionBytes = mongoSessionManager.getResidentSessionBytes();
+        assertTrue(residentSessionBytes > 30000);
+
+        mongoSessionManager.setMaxActiveSessionBytes(residentSessionBytes / 2);
+        mongoSessionManager.processPersistenceChecks();
+        assertEquals(2, mongoSessionManager.getSwapOutCount());
+        assertEquals(1, mongoSessionManager.getActiveSessions());
+        assertNotNull(mongoSessionManager.findSession(newest.getId()));
+        assertTrue(mongoSessionManager.getResidentSessionBytes() <= residentSessionBytes / 2);
+
+        mongoSessionManager.setMaxActiveSessionBytes(-1);
+        assertEquals(oldestId, mongoSessionManager.findSession(oldestId).getId());
+        assertEquals(1, mongoSessionManager.getSwapInCount());
+        assertEquals(2, mongoSessionManager.getActiveSessions());
+        // make sure the clock moved since the last check so that the rate is computed
+        Thread.sleep(5);
+        mongoSessionManager.processPersistenceChecks();
+        assertTrue(mongoSessionManager.getSwapInsPerSecond() > 0);
+
+        mongoSessionManager.stop();
+        assertEquals(2, mongoSessionManager.getSwapOutCount());
+    }
+
+    @Test
+    public void swapLargestSessionsOverByteBudget() {
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setMinIdleSwap(0)
+                .setSwapLargestSessionsFirst(true));
+        StandardSession small = createIdleSession(mongoSessionManager, 1000, TimeUnit.MINUTES.toMillis(3));
+        StandardSession large = createIdleSession(mongoSessionManager, 50000, TimeUnit.MINUTES.toMillis(1));
+        String largeId = large.getId();
+        mongoSessionManager.processPersistenceChecks();
+        long residentSessionBytes = mongoSessionManager.getResidentSessionBytes();
+
+        mongoSessionManager.setMaxActiveSessionBytes(residentSessionBytes - 1);
+        mongoSessionManager.processPersistenceChecks();
+        assertEquals(1, mongoSessionManager.getSwapOutCount());
+        assertEquals(1, mongoSessionManager.getActiveSessions());
+        assertFalse(mongoSessionManager.isLoaded(largeId));
+        assertTrue(mongoSessionManager.isLoaded(small.getId()));
+    }
+
+    @Test
+    public void sessionWithRequestInFlightIsNotSwappedOverByteBudget() {
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setMinIdleSwap(0)
+                .setSwapLargestSessionsFirst(true));
+        StandardSession small = createIdleSession(mongoSessionManager, 1000, TimeUnit.MINUTES.toMillis(3));
+        StandardSession large = createIdleSession(mongoSessionManager, 50000, TimeUnit.MINUTES.toMillis(1));
+        mongoSessionManager.processPersistenceChecks();
+        long residentSessionBytes = mongoSessionManager.getResidentSessionBytes();
+
+        assertTrue(large instanceof MongoSession);
+        large.access();
+        mongoSessionManager.setMaxActiveSessionBytes(residentSessionBytes - 1);
+        mongoSessionManager.processPersistenceChecks();
+        assertTrue(mongoSessionManager.isLoaded(large.getId()));
+        assertNotNull(large.getAttribute("data"));
+        assertFalse(mongoSessionManager.isLoaded(small.getId()));
+        large.endAccess();
+    }
+
+    @Test
+    public void noByteBudgetSwapsWithoutMinIdleSwap() {
+        MongoSessionManager mongoSessionManager = build(getMongoSessionManagerBuilder()
+                .setMaxIdleSwap(-1)
+                .setMaxActiveSessionBytes(1));
+        createIdleSession(mongoSessionManager, 10000, TimeUnit.MINUTES.toMillis(1));
+        mongoSessionManager.processPersistenceChecks();
+        mongoSessionManager.processPersistenceChecks();
+        assertEquals(0, mongoSessionManager.getSwapOutCount());
+        assertEquals(1, mongoSessionManager.getActiveSessions());
+    }
+
 }
@@ -0,0 +1,73 @@
+package com.github.vincentrussell.tomcat.session;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.util.SocketUtils;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link LoadTestHarness} and prints its report.  Excluded from the default
+ * build; run it with {@code mvn verify -P loadTest} and tune it with the
+ * {@code loadTest.*} system properties.
+ */
+public class MultiNodeLoadIT {
+
+    public static final String USERNAME = "my_user";
+    public static final String PASSWORD = "password";
+    private static int port = SocketUtils.findAvailableTcpPort();
+    private static EmbeddedMongo embeddedMongo;
+
+    @BeforeClass
+    public static void beforeClass() throws IOException {
+        embeddedMongo = new EmbeddedMongo(port, System.getProperty("loadTest.mongoVersion",
+                MongoSessionManagerIT.VERSION), USERNAME, PASSWORD);
+    }
+
+    @AfterClass
+    public static void afterClass() throws IOException {
+        embeddedMongo.close();
+    }
+
+    @Test
+    public void nonStickyTraffic() throws Exception {
+        MongoSessionManager defaults = new MongoSessionManager();
+        try (LoadTestHarness loadTestHarness = new LoadTestHarness.Builder()
+                .setEmbeddedMongo(embeddedMongo)
+                .setUsername(USERNAME)
+                .setPassword(PASSWORD)
+                .setNodes(Integer.getInteger("loadTest.nodes", 3))
+                .setUsers(Integer.getInteger("loadTest.users", 50))
+                .setThreads(Integer.getInteger("loadTest.threads", 8))
+                .setSessionSizeBytes(Integer.getInteger("loadTest.sessionSizeBytes", 1024))
+                .setWritePercent(Integer.getInteger("loadTest.writePercent", 20))
+                .setDurationSeconds(Integer.getInteger("loadTest.durationSeconds", 30))
+                .setSeed(Long.getLong("loadTest.seed", 42))
+                .setBackgroundProcessorDelay(Integer.getInteger("loadTest.backgroundProcessorDelay", -1))
+                .setProcessExpiresFrequency(Integer.getInteger("loadTest.processExpiresFrequency",
+                        defaults.getProcessExpiresFrequency()))
+                .setMaxIdleSwap(Integer.getInteger("loadTest.maxIdleSwap", defaults.getMaxIdleSwap()))
+                .setMaxIdleBackup(Integer.getInteger("loadTest.maxIdleBackup", defaults.getMaxIdleBackup()))
+                .setMinIdleSwap(Integer.getInteger("loadTest.minIdleSwap", defaults.getMinIdleSwap()))
+                .setMaxActiveSessionBytes(Long.getLong("loadTest.maxActiveSessionBytes",
+                        defaults.getMaxActiveSessionBytes()))
+                .setSwapLargestSessionsFirst(Boolean.parseBoolean(System.getProperty(
+                        "loadTest.swapLargestSessionsFirst", String.valueOf(defaults.isSwapLargestSessionsFirst()))))
+                .setMaxBackupWritesPerSecond(Integer.getInteger("loadTest.maxBackupWritesPerSecond",
+                        defaults.getMaxBackupWritesPerSecond()))
+                .setMaxBackupBytesPerSecond(Integer.getInteger("loadTest.maxBackupBytesPerSecond",
+                        defaults.getMaxBackupBytesPerSecond()))
+                .setBackupJitterPercent(Integer.getInteger("loadTest.backupJitterPercent",
+                        defaults.getBackupJitterPercent()))
+                .build()) {
+            LoadTestHarness.Report report = loadTestHarness.run();
+            System.out.println(report);
+            assertTrue(report.getRequests() > 0);
+            assertEquals(0, report.getErrors());
+        }
+    }
+}